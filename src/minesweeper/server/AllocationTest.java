@@ -0,0 +1,258 @@
+package minesweeper.server;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/*
+ * Measures the bytes allocated on the calling thread by each handleRequest command type and each Board operation,
+ * and fails when one exceeds its budget. Budgets are in bytes per call on a 10x10 board and may be overridden with
+ * the system property minesweeper.allocbudget.NAME, e.g. -Dminesweeper.allocbudget.look=40000. Set
+ * -Dminesweeper.allocbudget.verbose=true to print every measurement.
+ *
+ * Each default budget is the value measured on JDK 17.0.9 (Temurin, 64-bit HotSpot) plus 25%, so a hot path which
+ * starts allocating noticeably more fails. Other JVMs may need the budgets overridden.
+ *
+ * Every measured call does real work: digs run on a freshly built board so the flood fill happens each time, and
+ * flag/deflag always find the square in the opposite state. Building the board is not counted.
+ */
+public class AllocationTest {
+
+    private final static int SIZE = 10;
+    private final static int WARMUP = 20000;
+    private final static int ITERATIONS = 1000;
+
+    private static com.sun.management.ThreadMXBean threadBean;
+
+    /*
+     * An operation to measure. prepare() runs before every call to run() and
+     * is not counted.
+     */
+    private static abstract class Operation {
+        void prepare() {
+        }
+
+        abstract void run();
+    }
+
+    @BeforeClass
+    public static void setUp() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory
+                .getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Before
+    public void resetBoard() {
+        // digTest leaves a dug board behind
+        MinesweeperServer.setBoard(new Board(SIZE, fixedBoard(), false));
+    }
+
+    @Test
+    public void lookTest() {
+        assertRequestWithinBudget("look", "look", 38400);
+    }
+
+    @Test
+    public void digTest() {
+        assertWithinBudget("dig", 54400, new Operation() {
+            void prepare() {
+                MinesweeperServer.setBoard(new Board(SIZE, fixedBoard(), false));
+            }
+
+            void run() {
+                MinesweeperServer.handleRequest("dig 0 0");
+            }
+        });
+    }
+
+    @Test
+    public void flagTest() {
+        assertWithinBudget("flag", 38700, new Operation() {
+            void prepare() {
+                MinesweeperServer.handleRequest("deflag 1 1");
+            }
+
+            void run() {
+                MinesweeperServer.handleRequest("flag 1 1");
+            }
+        });
+    }
+
+    @Test
+    public void deflagTest() {
+        assertWithinBudget("deflag", 38700, new Operation() {
+            void prepare() {
+                MinesweeperServer.handleRequest("flag 1 1");
+            }
+
+            void run() {
+                MinesweeperServer.handleRequest("deflag 1 1");
+            }
+        });
+    }
+
+    @Test
+    public void helpTest() {
+        assertRequestWithinBudget("help", "help", 2800);
+    }
+
+    @Test
+    public void byeTest() {
+        assertRequestWithinBudget("bye", "bye", 2800);
+    }
+
+    @Test
+    public void invalidTest() {
+        assertRequestWithinBudget("invalid", "dig x y", 2700);
+    }
+
+    @Test
+    public void boardToStringTest() {
+        final Board board = new Board(SIZE, fixedBoard(), false);
+        assertWithinBudget("board.toString", 35700, new Operation() {
+            void run() {
+                board.toString();
+            }
+        });
+    }
+
+    @Test
+    public void boardDigTest() {
+        assertWithinBudget("board.dig", 51400, new Operation() {
+            private Board board;
+
+            void prepare() {
+                board = new Board(SIZE, fixedBoard(), false);
+            }
+
+            void run() {
+                board.dig(0, 0);
+            }
+        });
+    }
+
+    @Test
+    public void boardFlagTest() {
+        final Board board = new Board(SIZE, fixedBoard(), false);
+        assertWithinBudget("board.flag", 35700, new Operation() {
+            void prepare() {
+                board.deflag(1, 1);
+            }
+
+            void run() {
+                board.flag(1, 1);
+            }
+        });
+    }
+
+    @Test
+    public void boardDeflagTest() {
+        final Board board = new Board(SIZE, fixedBoard(), false);
+        assertWithinBudget("board.deflag", 35700, new Operation() {
+            void prepare() {
+                board.flag(1, 1);
+            }
+
+            void run() {
+                board.deflag(1, 1);
+            }
+        });
+    }
+
+    /*
+     * Checks the bytes allocated by one handleRequest call on the fixed board.
+     *
+     * @param name, budget name used in the system property
+     *
+     * @param command, the protocol line to send
+     *
+     * @param defaultBudget, bytes allowed per call if no property is set
+     */
+    private static void assertRequestWithinBudget(String name,
+            final String command, long defaultBudget) {
+        assertWithinBudget(name, defaultBudget, new Operation() {
+            void run() {
+                MinesweeperServer.handleRequest(command);
+            }
+        });
+    }
+
+    /*
+     * Runs an operation until it is JIT compiled, then fails if the average
+     * bytes it allocates per call exceed the budget. The cost of reading the
+     * counter is measured with an empty operation and subtracted.
+     *
+     * @param name, budget name used in the system property
+     *
+     * @param defaultBudget, bytes allowed per call if no property is set
+     *
+     * @param op, the operation to measure
+     */
+    private static void assertWithinBudget(String name, long defaultBudget,
+            Operation op) {
+        long budget = Long.getLong("minesweeper.allocbudget." + name,
+                defaultBudget);
+        Operation empty = new Operation() {
+            void run() {
+            }
+        };
+        measure(empty, WARMUP);
+        measure(op, WARMUP);
+        long overhead = measure(empty, ITERATIONS);
+        long perCall = (measure(op, ITERATIONS) - overhead) / ITERATIONS;
+        if (Boolean.getBoolean("minesweeper.allocbudget.verbose")) {
+            System.out.println(name + ": " + perCall + " bytes/call (budget "
+                    + budget + ")");
+        }
+        assertTrue(name + " allocated " + perCall + " bytes/call, budget is "
+                + budget, perCall <= budget);
+    }
+
+    /*
+     * Counts the bytes allocated by run(), leaving out prepare().
+     *
+     * @param op, the operation to measure
+     *
+     * @param iterations, number of calls
+     *
+     * @return long total bytes allocated by the calls to run()
+     */
+    private static long measure(Operation op, int iterations) {
+        long thread = Thread.currentThread().getId();
+        long total = 0;
+        for (int i = 0; i < iterations; i++) {
+            op.prepare();
+            long before = threadBean.getThreadAllocatedBytes(thread);
+            op.run();
+            total += threadBean.getThreadAllocatedBytes(thread) - before;
+        }
+        return total;
+    }
+
+    /*
+     * Makes a board with a single bomb in the far corner, so digging (0,0)
+     * opens all of it but that corner and never BOOMs.
+     *
+     * @return String[][] board of size SIZE*SIZE
+     */
+    private static String[][] fixedBoard() {
+        String[][] b = new String[SIZE][SIZE];
+        for (int x = 0; x < SIZE; x++) {
+            for (int y = 0; y < SIZE; y++) {
+                b[x][y] = "-";
+            }
+        }
+        b[SIZE - 1][SIZE - 1] = "bomb";
+        return b;
+    }
+
+}
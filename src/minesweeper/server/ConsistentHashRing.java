@@ -0,0 +1,119 @@
+package minesweeper.server;
+
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/*
+ * Argument for Thread-Safety
+ * Every method which reads or mutates the ring acquires the ring's intrinsic lock for the whole method.
+ */
+public class ConsistentHashRing {
+
+    private final int replicas;
+    private final TreeMap<Long, InetSocketAddress> ring = new TreeMap<Long, InetSocketAddress>();
+
+    /*
+     * Creates an empty ring.
+     *
+     * @param replicas, number of virtual nodes placed on the ring per backend.
+     * More replicas spread the keys more evenly between backends.
+     */
+    public ConsistentHashRing(int replicas) {
+        if (replicas < 1) {
+            throw new IllegalArgumentException("replicas must be positive");
+        }
+        this.replicas = replicas;
+    }
+
+    /*
+     * Places a backend on the ring. Adding a backend which is already on the
+     * ring has no effect.
+     *
+     * @param backend, address of the backend MinesweeperServer
+     */
+    public synchronized void add(InetSocketAddress backend) {
+        for (int i = 0; i < replicas; i++) {
+            ring.put(hash(backend.getHostString() + ":" + backend.getPort()
+                    + "#" + i), backend);
+        }
+    }
+
+    /*
+     * Removes a backend from the ring. Only the keys which mapped to this
+     * backend move; all other keys keep their placement.
+     *
+     * @param backend, address of the backend MinesweeperServer
+     */
+    public synchronized void remove(InetSocketAddress backend) {
+        for (int i = 0; i < replicas; i++) {
+            ring.remove(hash(backend.getHostString() + ":" + backend.getPort()
+                    + "#" + i));
+        }
+    }
+
+    /*
+     * Finds the backends responsible for a key, in ring order starting with
+     * the preferred one. Callers fall back to later entries if the preferred
+     * backend cannot be reached.
+     *
+     * @param key, the game room key
+     *
+     * @return List of distinct backends, empty if the ring is empty.
+     */
+    public synchronized List<InetSocketAddress> lookup(String key) {
+        List<InetSocketAddress> backends = new ArrayList<InetSocketAddress>();
+        if (ring.isEmpty()) {
+            return backends;
+        }
+        long h = hash(key);
+        // walk clockwise from the key's position, wrapping around at the end
+        List<InetSocketAddress> walk = new ArrayList<InetSocketAddress>(ring
+                .tailMap(h).values());
+        walk.addAll(ring.headMap(h).values());
+        for (InetSocketAddress backend : walk) {
+            if (!backends.contains(backend)) {
+                backends.add(backend);
+            }
+        }
+        return backends;
+    }
+
+    /*
+     * checks whether a backend is currently on the ring.
+     *
+     * @param backend, address of the backend MinesweeperServer
+     *
+     * @return Boolean of whether or not new rooms can be placed on backend
+     */
+    public synchronized boolean contains(InetSocketAddress backend) {
+        return ring.containsValue(backend);
+    }
+
+    /*
+     * Hashes a string onto the ring using the first 8 bytes of its MD5 digest.
+     *
+     * @param s, the string to hash
+     *
+     * @return long position on the ring
+     */
+    private static long hash(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(
+                    s.getBytes("UTF-8"));
+            long h = 0;
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (digest[i] & 0xff);
+            }
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
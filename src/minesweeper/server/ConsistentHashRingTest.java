@@ -0,0 +1,54 @@
+package minesweeper.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+
+import org.junit.Test;
+
+public class ConsistentHashRingTest {
+
+    private final InetSocketAddress a = new InetSocketAddress("localhost", 4445);
+    private final InetSocketAddress b = new InetSocketAddress("localhost", 4446);
+    private final InetSocketAddress c = new InetSocketAddress("localhost", 4447);
+
+    @Test
+    public void emptyRingTest() {
+        ConsistentHashRing ring = new ConsistentHashRing(10);
+        assertTrue(ring.lookup("room").isEmpty());
+    }
+
+    @Test
+    public void lookupListsEveryBackendOnceTest() {
+        ConsistentHashRing ring = new ConsistentHashRing(10);
+        ring.add(a);
+        ring.add(b);
+        ring.add(c);
+        assertEquals(3, ring.lookup("room").size());
+        assertEquals(ring.lookup("room"), ring.lookup("room"));
+    }
+
+    @Test
+    public void drainOnlyMovesDrainedRoomsTest() {
+        ConsistentHashRing ring = new ConsistentHashRing(100);
+        ring.add(a);
+        ring.add(b);
+        ring.add(c);
+        InetSocketAddress[] before = new InetSocketAddress[200];
+        for (int i = 0; i < before.length; i++) {
+            before[i] = ring.lookup("room" + i).get(0);
+        }
+        ring.remove(b);
+        assertFalse(ring.contains(b));
+        for (int i = 0; i < before.length; i++) {
+            InetSocketAddress after = ring.lookup("room" + i).get(0);
+            assertFalse(after.equals(b));
+            if (!before[i].equals(b)) {
+                assertEquals(before[i], after);
+            }
+        }
+    }
+
+}
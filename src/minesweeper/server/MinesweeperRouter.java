@@ -0,0 +1,543 @@
+package minesweeper.server;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Thread Safety Argument
+ * We assign two threads for each client, one pumping bytes client->backend and one backend->client. The threads
+ * share the hash ring, which is protected by its own intrinsic lock, and their Session, whose intrinsic lock guards the
+ * count of finished pumps. The set of open sessions is guarded by its own intrinsic lock. A single reaper thread reads
+ * the sessions' volatile timestamps and closes sessions that are idle or stuck in a write. Draining a backend only
+ * removes it from the ring, so sessions already placed on it keep running until their clients disconnect.
+ */
+
+public class MinesweeperRouter {
+
+    private final static int BUFFER_SIZE = 8192;
+    private final static int REPLICAS = 100;
+    private final static int ROOM_WAIT = 250;
+    private final static int ROOM_LINE_MAX = 256;
+    private final static long REAP_INTERVAL = 1000;
+    private final ServerSocket serverSocket;
+    private final ConsistentHashRing ring = new ConsistentHashRing(REPLICAS);
+    private final Set<Session> sessions = new HashSet<Session>();
+    private int nextConnection = 0;
+
+    /*
+     * Limits at the edge. The backends' own limits only protect the backends,
+     * so the router enforces these for its clients. Each may be overridden
+     * with the system property named in brackets; timeouts are in
+     * milliseconds and 0 disables them.
+     */
+    /** Most clients connected at once [minesweeper.router.maxconnections]. */
+    private final int maxConnections = Integer.getInteger(
+            "minesweeper.router.maxconnections", 1000);
+    /** Longest a single forwarded write may take [minesweeper.router.writetimeout]. */
+    private final long writeTimeout = Long.getLong(
+            "minesweeper.router.writetimeout", 10000);
+    /** Longest a session may go without forwarding anything [minesweeper.router.idletimeout]. */
+    private final long idleTimeout = Long.getLong(
+            "minesweeper.router.idletimeout", 600000);
+
+    /**
+     * Make a router which places games on the given backend servers.
+     *
+     * @param port
+     *            The network port on which the router should listen.
+     * @param backends
+     *            Addresses of the running MinesweeperServer processes.
+     * @throws IOException
+     *             if the listening socket cannot be opened.
+     */
+    public MinesweeperRouter(int port, List<InetSocketAddress> backends)
+            throws IOException {
+        serverSocket = new ServerSocket(port);
+        for (InetSocketAddress backend : backends) {
+            ring.add(backend);
+        }
+    }
+
+    /**
+     * Stop placing new games on a backend. Clients already connected to it are
+     * not disturbed.
+     *
+     * @param backend
+     *            address of the backend to drain
+     */
+    public void drain(InetSocketAddress backend) {
+        ring.remove(backend);
+    }
+
+    /**
+     * Put a drained backend back into service.
+     *
+     * @param backend
+     *            address of the backend to restore
+     */
+    public void undrain(InetSocketAddress backend) {
+        ring.add(backend);
+    }
+
+    /**
+     * Choose the backends for a game room, preferred backend first.
+     *
+     * @param room
+     *            the game room key
+     * @return backends in the order they should be tried
+     */
+    public List<InetSocketAddress> place(String room) {
+        return ring.lookup(room);
+    }
+
+    /**
+     * @return the port the router is listening on
+     */
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Stop accepting clients. serve() throws once the listening socket is
+     * closed; sessions already forwarding are not disturbed.
+     * 
+     * @throws IOException
+     *             if the listening socket cannot be closed
+     */
+    void close() throws IOException {
+        serverSocket.close();
+    }
+
+    /**
+     * Run the router, listening for client connections and forwarding them.
+     * Never returns unless an exception is thrown.
+     *
+     * @throws IOException
+     *             if the main server socket is broken (IOExceptions from
+     *             individual clients do *not* terminate serve()).
+     */
+    public void serve() throws IOException {
+        Thread reaper = new Thread(new Runnable() {
+            public void run() {
+                reap();
+            }
+        });
+        reaper.setDaemon(true);
+        reaper.start();
+
+        while (true) {
+            // block until a client connects
+            final Socket client = serverSocket.accept();
+
+            // turn the client away if we are full
+            final Session session = admit(client);
+            if (session == null) {
+                continue;
+            }
+
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        handleConnection(session);
+                    } catch (IOException exception) {
+                        exception.printStackTrace();// but don't terminate
+                                                    // serve()
+                    }
+                }
+            });
+            thread.start();
+        }
+    }
+
+    /**
+     * Register a new client, or reject it with a busy message if
+     * maxConnections clients are already connected.
+     * 
+     * @param client
+     *            socket where the client is connected
+     * @return the registered session, or null if the client was rejected
+     */
+    private Session admit(Socket client) {
+        synchronized (sessions) {
+            if (sessions.size() < maxConnections) {
+                Session session = new Session(client, "connection-"
+                        + nextConnection++);
+                sessions.add(session);
+                return session;
+            }
+        }
+        try {
+            // a fresh socket's send buffer holds this without blocking
+            OutputStream out = client.getOutputStream();
+            out.write("Server is busy. Please try again later.\n"
+                    .getBytes("UTF-8"));
+            out.flush();
+            client.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Close sessions which have forwarded nothing for longer than idleTimeout,
+     * or whose current write has blocked longer than writeTimeout. Returns
+     * once the listening socket is closed.
+     */
+    private void reap() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Thread.sleep(REAP_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            Session[] snapshot;
+            synchronized (sessions) {
+                snapshot = sessions.toArray(new Session[0]);
+            }
+            for (Session session : snapshot) {
+                boolean idle = idleTimeout > 0
+                        && now - session.lastActivity > idleTimeout;
+                if (idle || session.isStuck(now, writeTimeout)) {
+                    session.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Connect a client to the backend owning its room and forward bytes both
+     * ways until both sides have finished. If no backend can be reached the
+     * client is told so and disconnected.
+     *
+     * A client may choose its room by sending "room NAME" as its first line
+     * within ROOM_WAIT milliseconds of connecting; that line is not forwarded.
+     * Clients naming the same room share a game. Otherwise each connection is
+     * its own room, so games spread across the backends.
+     *
+     * @param session
+     *            the admitted client
+     * @throws IOException
+     *             if the client's socket breaks before forwarding starts
+     */
+    private void handleConnection(final Session session) throws IOException {
+        final Socket client = session.client;
+        ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        try {
+            String room = readRoom(client, pending);
+            if (room == null) {
+                room = session.defaultRoom;
+            }
+            Socket backend = connect(place(room));
+            if (backend == null) {
+                OutputStream out = client.getOutputStream();
+                out.write("No Minesweeper server is available.\n"
+                        .getBytes("UTF-8"));
+                out.flush();
+                session.close();
+                return;
+            }
+            session.setBackend(backend);
+            client.setTcpNoDelay(true);
+            backend.setTcpNoDelay(true);
+            // bytes the client sent after (or instead of) a room line
+            OutputStream toBackend = backend.getOutputStream();
+            pending.writeTo(toBackend);
+            toBackend.flush();
+        } catch (IOException e) {
+            session.close();
+            throw e;
+        }
+
+        Thread upstream = new Thread(new Runnable() {
+            public void run() {
+                pump(client, session.backend, session, false);
+            }
+        });
+        upstream.start();
+        pump(session.backend, client, session, true);
+    }
+
+    /**
+     * Wait briefly for an optional "room NAME" first line from the client.
+     * 
+     * @param client
+     *            socket where the client is connected
+     * @param pending
+     *            receives every byte read which is not the room line, to be
+     *            forwarded to the backend
+     * @return the room name, or null if the client did not name one
+     * @throws IOException
+     *             if the client's socket breaks
+     */
+    private static String readRoom(Socket client, ByteArrayOutputStream pending)
+            throws IOException {
+        InputStream in = client.getInputStream();
+        byte[] line = new byte[ROOM_LINE_MAX];
+        int length = 0;
+        client.setSoTimeout(ROOM_WAIT);
+        try {
+            while (length < line.length) {
+                int n = in.read(line, length, line.length - length);
+                if (n == -1) {
+                    break;
+                }
+                length += n;
+                int newline = indexOf(line, length, (byte) '\n');
+                if (newline != -1) {
+                    String first = new String(line, 0, newline, "UTF-8")
+                            .trim();
+                    if (first.matches("room [\\w-]+")) {
+                        pending.write(line, newline + 1, length - newline - 1);
+                        return first.substring("room ".length());
+                    }
+                    break;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // no room line: the client is waiting for the welcome message
+        } finally {
+            client.setSoTimeout(0);
+        }
+        pending.write(line, 0, length);
+        return null;
+    }
+
+    /**
+     * @return index of the first b in the first length bytes of bytes, or -1
+     */
+    private static int indexOf(byte[] bytes, int length, byte b) {
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A client and its backend, and when they last forwarded anything. The
+     * sockets are closed once both directions have finished, as soon as either
+     * direction fails, or when the reaper gives up on the session.
+     */
+    private class Session {
+        final Socket client;
+        final String defaultRoom;
+        volatile Socket backend;
+        /** Time anything was last forwarded. */
+        volatile long lastActivity = System.currentTimeMillis();
+        /** Times the current write to the client/backend started, or 0. */
+        volatile long clientWriteStarted = 0;
+        volatile long backendWriteStarted = 0;
+        private int finished = 0;
+
+        Session(Socket client, String defaultRoom) {
+            this.client = client;
+            this.defaultRoom = defaultRoom;
+        }
+
+        void setBackend(Socket backend) {
+            this.backend = backend;
+        }
+
+        /**
+         * @return whether a write has been blocked longer than writeTimeout
+         */
+        boolean isStuck(long now, long writeTimeout) {
+            if (writeTimeout <= 0) {
+                return false;
+            }
+            long toClient = clientWriteStarted;
+            long toBackend = backendWriteStarted;
+            return (toClient != 0 && now - toClient > writeTimeout)
+                    || (toBackend != 0 && now - toBackend > writeTimeout);
+        }
+
+        /**
+         * Record that one direction reached end of stream, closing both
+         * sockets if it was the second.
+         */
+        synchronized void finish() {
+            finished++;
+            if (finished == 2) {
+                close();
+            }
+        }
+
+        /**
+         * Close both sockets, which also wakes a pump blocked in read or
+         * write, and unregister the session.
+         */
+        synchronized void close() {
+            closeQuietly(client);
+            if (backend != null) {
+                closeQuietly(backend);
+            }
+            synchronized (sessions) {
+                sessions.remove(this);
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Open a connection to the first reachable backend.
+     *
+     * @param candidates
+     *            backends in the order they should be tried
+     * @return connected socket, or null if none could be reached
+     */
+    private static Socket connect(List<InetSocketAddress> candidates) {
+        for (InetSocketAddress candidate : candidates) {
+            try {
+                return new Socket(candidate.getAddress(), candidate.getPort());
+            } catch (IOException e) {
+                System.err.println("backend unreachable: " + candidate);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copy bytes from one socket to another through a single reused buffer.
+     * Protocol lines are forwarded as they arrive, without being decoded. At
+     * end of stream the write side of the other socket is shut down, so a
+     * client that half-closes after sending still receives its replies.
+     * 
+     * @param from
+     *            socket to read from
+     * @param to
+     *            socket to write to
+     * @param session
+     *            the session both sockets belong to
+     * @param toClient
+     *            true if to is the client's socket
+     */
+    private static void pump(Socket from, Socket to, Session session,
+            boolean toClient) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+            for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+                long now = System.currentTimeMillis();
+                if (toClient) {
+                    session.clientWriteStarted = now;
+                } else {
+                    session.backendWriteStarted = now;
+                }
+                out.write(buffer, 0, n);
+                out.flush();
+                if (toClient) {
+                    session.clientWriteStarted = 0;
+                } else {
+                    session.backendWriteStarted = 0;
+                }
+                session.lastActivity = System.currentTimeMillis();
+            }
+            to.shutdownOutput();
+            session.finish();
+        } catch (IOException e) {
+            // a peer went away, or the sockets were already closed
+            session.close();
+        }
+    }
+
+    /**
+     * Start a MinesweeperRouter on the default port (4444), forwarding to
+     * MinesweeperServer processes running on localhost.
+     *
+     * Usage: MinesweeperRouter PORT+
+     *
+     * Each PORT is the port of a backend MinesweeperServer on localhost, e.g.
+     * started with -Dminesweeper.customport=4445. Clients may send
+     * "room NAME" as their first line to join a named game. While running, the router
+     * reads admin commands from standard input: "drain PORT" stops placing
+     * new games on that backend and "undrain PORT" puts it back in service.
+     *
+     * The system property minesweeper.customport may be used to specify a
+     * listening port other than the default.
+     */
+    public static void main(String[] args) {
+        final List<InetSocketAddress> backends = new ArrayList<InetSocketAddress>();
+        try {
+            if (args.length == 0)
+                throw new IllegalArgumentException();
+            for (String arg : args) {
+                backends.add(new InetSocketAddress("localhost", Integer
+                        .parseInt(arg)));
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("usage: MinesweeperRouter PORT+");
+            return;
+        }
+        final int port;
+        String portProp = System.getProperty("minesweeper.customport");
+        if (portProp == null) {
+            port = 4444;
+        } else {
+            port = Integer.parseInt(portProp);
+        }
+        try {
+            final MinesweeperRouter router = new MinesweeperRouter(port,
+                    backends);
+            Thread admin = new Thread(new Runnable() {
+                public void run() {
+                    router.readAdminCommands();
+                }
+            });
+            admin.setDaemon(true);
+            admin.start();
+            router.serve();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Read "drain PORT" and "undrain PORT" commands from standard input until
+     * it is closed.
+     */
+    private void readAdminCommands() {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        try {
+            for (String line = in.readLine(); line != null; line = in
+                    .readLine()) {
+                if (!line.matches("(drain|undrain) \\d+")) {
+                    System.err.println("usage: (drain | undrain) PORT");
+                    continue;
+                }
+                String[] tokens = line.split(" ");
+                InetSocketAddress backend = new InetSocketAddress("localhost",
+                        Integer.parseInt(tokens[1]));
+                if (tokens[0].equals("drain")) {
+                    drain(backend);
+                } else {
+                    undrain(backend);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package minesweeper.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+/*
+ * Runs the router and its backends on localhost, all on ports picked by the OS.
+ */
+public class MinesweeperRouterTest {
+
+    private final static String ROOM = "test";
+    private final static String BUSY = "Server is busy. Please try again later.";
+    private final static String[] PROPERTIES = {
+            "minesweeper.router.maxconnections",
+            "minesweeper.router.writetimeout",
+            "minesweeper.router.idletimeout" };
+    private final List<ServerSocket> fakeBackends = new ArrayList<ServerSocket>();
+    private MinesweeperRouter router;
+    private MinesweeperServer server;
+
+    @After
+    public void tearDown() throws IOException {
+        for (String property : PROPERTIES) {
+            System.clearProperty(property);
+        }
+        if (router != null) {
+            router.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+        for (ServerSocket backend : fakeBackends) {
+            backend.close();
+        }
+    }
+
+    @Test
+    public void passThroughTest() throws IOException {
+        server = new MinesweeperServer(3, 0, true);
+        startInBackground(server);
+        router = startRouter(address(server.getPort()));
+
+        Socket client = new Socket("localhost", router.getPort());
+        BufferedReader in = reader(client);
+        PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+        assertEquals("Welcome to Minesweeper. 1 people are playing including you. "
+                + "Type 'help' for help.", in.readLine());
+        out.println("look");
+        for (int row = 0; row < 3; row++) {
+            assertEquals(5, in.readLine().length());
+        }
+        out.println("bye");
+        assertEquals("bye", in.readLine());
+        assertNull(in.readLine());
+        client.close();
+    }
+
+    @Test
+    public void halfCloseTest() throws IOException {
+        server = new MinesweeperServer(3, 0, true);
+        startInBackground(server);
+        router = startRouter(address(server.getPort()));
+
+        Socket client = new Socket("localhost", router.getPort());
+        BufferedReader in = reader(client);
+        PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+        out.println("look");
+        client.shutdownOutput();
+        assertFalse(in.readLine() == null);// welcome
+        for (int row = 0; row < 3; row++) {
+            assertEquals(5, in.readLine().length());
+        }
+        assertNull(in.readLine());
+        client.close();
+    }
+
+    @Test
+    public void drainTest() throws IOException {
+        InetSocketAddress a = address(startFakeBackend());
+        InetSocketAddress b = address(startFakeBackend());
+        router = startRouter(a, b);
+        InetSocketAddress preferred = router.place(ROOM).get(0);
+        InetSocketAddress other = preferred.equals(a) ? b : a;
+
+        assertEquals(preferred.getPort(), connectedBackend(ROOM));
+        assertEquals(preferred.getPort(), connectedBackend(ROOM));
+        router.drain(preferred);
+        assertEquals(other.getPort(), connectedBackend(ROOM));
+        router.undrain(preferred);
+        assertEquals(preferred.getPort(), connectedBackend(ROOM));
+    }
+
+    @Test
+    public void fallbackTest() throws IOException {
+        InetSocketAddress live = address(startFakeBackend());
+        // find a closed port the ring prefers over the live backend
+        InetSocketAddress dead;
+        ConsistentHashRing ring;
+        do {
+            ServerSocket stopped = new ServerSocket(0);
+            dead = address(stopped.getLocalPort());
+            stopped.close();
+            ring = new ConsistentHashRing(100);
+            ring.add(live);
+            ring.add(dead);
+        } while (!ring.lookup(ROOM).get(0).equals(dead));
+        router = startRouter(live, dead);
+        assertEquals(dead, router.place(ROOM).get(0));
+
+        assertEquals(live.getPort(), connectedBackend(ROOM));
+        router.drain(live);
+        Socket client = new Socket("localhost", router.getPort());
+        assertEquals("No Minesweeper server is available.", reader(client)
+                .readLine());
+        client.close();
+    }
+
+    @Test
+    public void spreadTest() throws IOException {
+        router = startRouter(address(startFakeBackend()),
+                address(startFakeBackend()));
+
+        // without a room line every connection is its own room, so clients
+        // from one host still spread across the backends
+        int first = connectedBackend(null);
+        boolean spread = false;
+        for (int i = 0; i < 20 && !spread; i++) {
+            spread = connectedBackend(null) != first;
+        }
+        assertTrue(spread);
+    }
+
+    @Test
+    public void roomLineNotForwardedTest() throws IOException {
+        router = startRouter(address(startFakeBackend()),
+                address(startFakeBackend()));
+
+        Socket client = new Socket("localhost", router.getPort());
+        PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+        out.print("room " + ROOM + "\nhello\n");
+        out.flush();
+        BufferedReader in = reader(client);
+        assertEquals("backend " + router.place(ROOM).get(0).getPort(), in
+                .readLine());
+        assertEquals("got hello", in.readLine());
+        client.close();
+    }
+
+    @Test
+    public void busyTest() throws IOException {
+        System.setProperty("minesweeper.router.maxconnections", "1");
+        server = new MinesweeperServer(3, 0, true);
+        startInBackground(server);
+        router = startRouter(address(server.getPort()));
+
+        Socket first = new Socket("localhost", router.getPort());
+        assertTrue(reader(first).readLine().startsWith("Welcome"));
+        Socket second = new Socket("localhost", router.getPort());
+        assertEquals(BUSY, reader(second).readLine());
+        second.close();
+        first.close();
+    }
+
+    @Test
+    public void stuckClientReapedTest() throws IOException {
+        System.setProperty("minesweeper.router.maxconnections", "1");
+        System.setProperty("minesweeper.router.writetimeout", "1000");
+        router = startRouter(address(startFloodingBackend()));
+
+        // a client which never reads what the backend sends
+        Socket stuck = new Socket();
+        stuck.setReceiveBufferSize(4096);
+        stuck.connect(new InetSocketAddress("localhost", router.getPort()));
+
+        // the router gives up on it and frees the only slot
+        long deadline = System.currentTimeMillis() + 10000;
+        boolean admitted = false;
+        while (!admitted && System.currentTimeMillis() < deadline) {
+            sleep(500);
+            Socket other = new Socket("localhost", router.getPort());
+            other.setSoTimeout(5000);
+            admitted = !BUSY.equals(reader(other).readLine());
+            other.close();
+        }
+        assertTrue(admitted);
+        stuck.close();
+    }
+
+    @Test
+    public void idleReapTest() throws IOException {
+        System.setProperty("minesweeper.router.idletimeout", "1000");
+        server = new MinesweeperServer(3, 0, true);
+        startInBackground(server);
+        router = startRouter(address(server.getPort()));
+
+        Socket client = new Socket("localhost", router.getPort());
+        client.setSoTimeout(10000);
+        BufferedReader in = reader(client);
+        assertTrue(in.readLine().startsWith("Welcome"));
+        assertNull(in.readLine());
+        client.close();
+    }
+
+    /*
+     * Connects a client through the router.
+     *
+     * @param room, the room to ask for, or null to send no room line
+     *
+     * @return Integer port of the fake backend which served the client
+     */
+    private int connectedBackend(String room) throws IOException {
+        Socket client = new Socket("localhost", router.getPort());
+        if (room != null) {
+            PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+            out.println("room " + room);
+        }
+        String line = reader(client).readLine();
+        client.close();
+        return Integer.parseInt(line.substring("backend ".length()));
+    }
+
+    /*
+     * Starts a backend which greets each client with "backend PORT", echoes
+     * the first line it receives as "got LINE" and then closes the connection.
+     *
+     * @return Integer port the backend listens on
+     */
+    private int startFakeBackend() throws IOException {
+        final ServerSocket backend = new ServerSocket(0);
+        fakeBackends.add(backend);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        Socket socket = backend.accept();
+                        PrintWriter out = new PrintWriter(
+                                socket.getOutputStream(), true);
+                        out.println("backend " + backend.getLocalPort());
+                        socket.setSoTimeout(2000);
+                        try {
+                            String line = reader(socket).readLine();
+                            if (line != null) {
+                                out.println("got " + line);
+                            }
+                        } catch (SocketTimeoutException e) {
+                            // client sent nothing
+                        }
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // backend closed by tearDown
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return backend.getLocalPort();
+    }
+
+    /*
+     * Starts a backend which sends lines to each client as fast as it can
+     * until the connection breaks.
+     *
+     * @return Integer port the backend listens on
+     */
+    private int startFloodingBackend() throws IOException {
+        final ServerSocket backend = new ServerSocket(0);
+        fakeBackends.add(backend);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = backend.accept();
+                        Thread flood = new Thread(new Runnable() {
+                            public void run() {
+                                byte[] lines = new byte[65536];
+                                Arrays.fill(lines, (byte) '\n');
+                                try {
+                                    OutputStream out = socket.getOutputStream();
+                                    while (true) {
+                                        out.write(lines);
+                                    }
+                                } catch (IOException e) {
+                                    // router closed the connection
+                                }
+                            }
+                        });
+                        flood.setDaemon(true);
+                        flood.start();
+                    }
+                } catch (IOException e) {
+                    // backend closed by tearDown
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return backend.getLocalPort();
+    }
+
+    private MinesweeperRouter startRouter(InetSocketAddress... backends)
+            throws IOException {
+        final MinesweeperRouter router = new MinesweeperRouter(0,
+                Arrays.asList(backends));
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    router.serve();
+                } catch (IOException e) {
+                    // router closed by tearDown
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return router;
+    }
+
+    private static void startInBackground(final MinesweeperServer server) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    // server closed by tearDown
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static InetSocketAddress address(int port) {
+        return new InetSocketAddress("localhost", port);
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -7,11 +7,20 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.HashSet;
+import java.util.Set;
 
 /*
  * Thread Safety Argument
  * We assign one thread for each client. The board object has an intrinsic lock. The threads have to acquire the object's intrinsic lock
  * before accessing them, and then they release the intrinsic lock. The handleRequest method acquires the lock.
+ * Replies are handed to a second thread per client through an OutputBuffer, which has its own intrinsic lock, so a client
+ * that stops reading only ever blocks its own writer thread. The set of open connections and the player count are
+ * guarded by the connections set's intrinsic lock; a connection is unregistered by its writer thread, after its last
+ * write, so it counts against maxConnections until then. A single reaper thread reads the connections' volatile
+ * timestamps and closes sockets that are idle or stuck in a write.
  */
 
 public class MinesweeperServer {
@@ -21,7 +30,32 @@ public class MinesweeperServer {
     private static Board board;
     private int curr_players = 0;
     private final static int PORT = 4444;
+    private final static long REAP_INTERVAL = 1000;
     private final boolean debug;
+    private final Set<Connection> connections = new HashSet<Connection>();
+
+    /*
+     * Limits for slow or idle clients. Each may be overridden with the system
+     * property named in brackets; timeouts are in milliseconds and 0 disables
+     * them.
+     */
+    /** Most clients connected at once [minesweeper.maxconnections]. */
+    private final int maxConnections = Integer.getInteger(
+            "minesweeper.maxconnections", 100);
+    /** Longest a read may block [minesweeper.readtimeout]. */
+    private final int readTimeout = Integer.getInteger(
+            "minesweeper.readtimeout", 0);
+    /** Longest a single reply may take to write [minesweeper.writetimeout]. */
+    private final long writeTimeout = Long.getLong(
+            "minesweeper.writetimeout", 10000);
+    /** Longest a client may go without sending or receiving [minesweeper.idletimeout]. */
+    private final long idleTimeout = Long.getLong("minesweeper.idletimeout",
+            600000);
+    /** Characters of replies queued per client [minesweeper.outputbuffer]. */
+    private final int outputBufferSize = Integer.getInteger(
+            "minesweeper.outputbuffer", 65536);
+    /** What to do when a client's replies overflow [minesweeper.overflow]. */
+    private final OutputBuffer.OverflowPolicy overflowPolicy;
 
     /**
      * True if the server should _not_ disconnect a client after a BOOM message.
@@ -29,6 +63,7 @@ public class MinesweeperServer {
 
     public MinesweeperServer(int size, int port, boolean debug)
             throws IOException {
+        this.overflowPolicy = overflowPolicy();
         serverSocket = new ServerSocket(port);
         this.debug = debug;
         this.board = new Board(size, debug);
@@ -36,11 +71,77 @@ public class MinesweeperServer {
 
     public MinesweeperServer(File file, int port, boolean debug)
             throws IOException {
+        this.overflowPolicy = overflowPolicy();
         serverSocket = new ServerSocket(port);
         this.debug = debug;
         this.board = new Board(file, debug);
     }
 
+    /**
+     * Read the overflow policy from the minesweeper.overflow property.
+     * 
+     * @return the configured policy, COALESCE if none is set
+     * @throws IllegalArgumentException
+     *             if the property is not one of the policies
+     */
+    private static OutputBuffer.OverflowPolicy overflowPolicy() {
+        String policy = System.getProperty("minesweeper.overflow", "COALESCE");
+        try {
+            return OutputBuffer.OverflowPolicy.valueOf(policy.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(
+                    "minesweeper.overflow must be DROP, COALESCE or DISCONNECT, not \""
+                            + policy + "\"");
+        }
+    }
+
+    /**
+     * Replace the board shared by all clients, e.g. with a fixed board in
+     * tests.
+     * 
+     * @param newBoard
+     *            the board to play on
+     */
+    static void setBoard(Board newBoard) {
+        board = newBoard;
+    }
+
+    /**
+     * @return the port the server is listening on
+     */
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Stop accepting clients. serve() throws once the listening socket is
+     * closed; clients already connected are not disturbed.
+     * 
+     * @throws IOException
+     *             if the listening socket cannot be closed
+     */
+    void close() throws IOException {
+        serverSocket.close();
+    }
+
+    /**
+     * A connected client: its socket, its queued replies, and when it was last
+     * active.
+     */
+    private static class Connection {
+        final Socket socket;
+        final OutputBuffer out;
+        /** Time of the last completed read or write. */
+        volatile long lastActivity = System.currentTimeMillis();
+        /** Time the current write started, or 0 if not writing. */
+        volatile long writeStarted = 0;
+
+        Connection(Socket socket, OutputBuffer out) {
+            this.socket = socket;
+            this.out = out;
+        }
+    }
+
     /**
      * Run the server, listening for client connections and handling them. Never
      * returns unless an exception is thrown.
@@ -50,15 +151,29 @@ public class MinesweeperServer {
      *             individual clients do *not* terminate serve()).
      */
     public void serve() throws IOException {
+        Thread reaper = new Thread(new Runnable() {
+            public void run() {
+                reap();
+            }
+        });
+        reaper.setDaemon(true);
+        reaper.start();
+
         while (true) {
             // block until a client connects
             final Socket socket = serverSocket.accept();
 
+            // turn the client away if we are full
+            final Connection connection = admit(socket);
+            if (connection == null) {
+                continue;
+            }
+
             // handle the client
             Thread thread = new Thread(new Runnable() {
                 public void run() {
                     try {
-                        handleConnection(socket);
+                        handleConnection(connection);
                     } catch (IOException exception) {
                         exception.printStackTrace();// but don't terminate
                                                     // serve()
@@ -70,53 +185,179 @@ public class MinesweeperServer {
     }
 
     /**
-     * Handle a single client connection. Returns when client disconnects.
+     * Register a new client, or reject it with a busy message if
+     * maxConnections clients are already connected.
      * 
      * @param socket
      *            socket where the client is connected
+     * @return the registered connection, or null if the client was rejected
+     */
+    private Connection admit(Socket socket) {
+        synchronized (connections) {
+            if (connections.size() < maxConnections) {
+                Connection connection = new Connection(socket,
+                        new OutputBuffer(outputBufferSize, overflowPolicy));
+                connections.add(connection);
+                this.curr_players++;
+                return connection;
+            }
+        }
+        try {
+            // a fresh socket's send buffer holds this without blocking
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println("Server is busy. Please try again later.");
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Close connections which have been idle longer than idleTimeout, or whose
+     * current write has blocked longer than writeTimeout. Returns once the
+     * listening socket is closed.
+     */
+    private void reap() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Thread.sleep(REAP_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            Connection[] snapshot;
+            synchronized (connections) {
+                snapshot = connections.toArray(new Connection[0]);
+            }
+            for (Connection connection : snapshot) {
+                long writeStarted = connection.writeStarted;
+                boolean stuck = writeTimeout > 0 && writeStarted != 0
+                        && now - writeStarted > writeTimeout;
+                boolean idle = idleTimeout > 0
+                        && now - connection.lastActivity > idleTimeout;
+                if (stuck || idle) {
+                    try {
+                        connection.socket.close();// wakes both threads
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Handle a single client connection. Returns when client disconnects.
+     * 
+     * Replies are queued on the connection's OutputBuffer and written by a
+     * separate thread, so this thread never blocks on a client that has
+     * stopped reading.
+     * 
+     * @param connection
+     *            the admitted client
      * @throws IOException
      *             if connection has an error or terminates unexpectedly
      */
-    private void handleConnection(Socket socket) throws IOException {
-        BufferedReader in = new BufferedReader(new InputStreamReader(
-                socket.getInputStream()));
-        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-        //
+    private void handleConnection(final Connection connection)
+            throws IOException {
+        // the writer owns the connection's registration, so start it first
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                writeReplies(connection);
+            }
+        });
+        writer.start();
 
-        //
-        this.curr_players++;
-        out.println("Welcome to Minesweeper. " + Integer.toString(curr_players)
-                + " people are playing including you. "
-                + "Type 'help' for help.");
+        final Socket socket = connection.socket;
         try {
+            socket.setSoTimeout(readTimeout);
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream()));
+
+            int players;
+            synchronized (connections) {
+                players = this.curr_players;
+            }
+            connection.out.offer("Welcome to Minesweeper. "
+                    + Integer.toString(players)
+                    + " people are playing including you. "
+                    + "Type 'help' for help.", false);
             for (String line = in.readLine(); line != null; line = in
                     .readLine()) {
+                connection.lastActivity = System.currentTimeMillis();
                 String output = handleRequest(line);
                 if (output != null) {
-                    out.println(output);
-
-                    out.flush();
-                    if (output.equals("bye")
-                            || (output.equals("BOOM!") && (!debug))) {// close
-                                                                      // socket
-                                                                      // if we
-                                                                      // get a
-                                                                      // bye or
-                                                                      // BOOM
-                                                                      // with
-                                                                      // debug
-                                                                      // false
+                    // only board replies may be dropped or coalesced
+                    boolean boardReply = !line.equals("help")
+                            && !line.equals("bye") && !output.equals("BOOM!");
+                    if (!connection.out.offer(output, boardReply)) {
+                        // client can't keep up
                         socket.close();
-                        break;//Was getting SocketClosed error until I added this break statement.
+                        break;
+                    }
+                    // after bye, or BOOM with debug false, stop reading; the
+                    // writer closes the socket once it has sent the reply
+                    if (output.equals("bye")
+                            || (output.equals("BOOM!") && (!debug))) {
+                        break;
                     }
 
                 }
             }
 
+        } catch (SocketTimeoutException e) {
+            // read timeout: the client went quiet, treat it as a disconnect
+        } catch (SocketException e) {
+            if (!socket.isClosed()) {
+                throw e;
+            }
+            // reaped, or the writer gave up on the client
+        } finally {
+            // the writer sends what is queued, closes the socket and
+            // unregisters the connection
+            connection.out.close();
+        }
+    }
+
+    /**
+     * Send a client's queued replies until its buffer is closed and drained,
+     * then close the socket. The connection stays registered, and counted
+     * against maxConnections, until this returns, so the reaper keeps
+     * enforcing the write timeout after the reader has finished.
+     * 
+     * @param connection
+     *            the client to write to
+     */
+    private void writeReplies(Connection connection) {
+        try {
+            PrintWriter out = new PrintWriter(
+                    connection.socket.getOutputStream(), true);
+            for (String message = connection.out.take(); message != null; message = connection.out
+                    .take()) {
+                connection.writeStarted = System.currentTimeMillis();
+                out.println(message);
+                connection.writeStarted = 0;
+                if (out.checkError()) {
+                    break;// socket closed or broken
+                }
+                connection.lastActivity = System.currentTimeMillis();
+            }
+        } catch (InterruptedException e) {
+            // stop writing
+        } catch (IOException e) {
+            // socket already broken
         } finally {
-            this.curr_players--;
-            out.close();
-            in.close();
+            connection.out.close();
+            try {
+                connection.socket.close();// wakes the reader if still running
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            synchronized (connections) {
+                connections.remove(connection);
+                this.curr_players--;
+            }
         }
     }
 
@@ -129,7 +370,7 @@ public class MinesweeperServer {
      * @param input
      * @return
      */
-    private static String handleRequest(String input) {
+    static String handleRequest(String input) {
         String regex = "(look)|(dig \\d+ \\d+)|(flag \\d+ \\d+)|"
                 + "(deflag \\d+ \\d+)|(help)|(bye)";
         if (!input.matches(regex)) {
@@ -0,0 +1,207 @@
+package minesweeper.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+import org.junit.After;
+import org.junit.Test;
+
+/*
+ * Runs serve() on localhost, on a port picked by the OS, with small limits set through the system properties the
+ * server reads when it is constructed.
+ */
+public class MinesweeperServerTest {
+
+    private final static String WELCOME = "Welcome to Minesweeper.";
+    private final static String BUSY = "Server is busy. Please try again later.";
+    private final static String[] PROPERTIES = { "minesweeper.maxconnections",
+            "minesweeper.readtimeout", "minesweeper.writetimeout",
+            "minesweeper.idletimeout", "minesweeper.overflow" };
+    private MinesweeperServer server;
+
+    @After
+    public void tearDown() throws IOException {
+        for (String property : PROPERTIES) {
+            System.clearProperty(property);
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void busyTest() throws IOException {
+        System.setProperty("minesweeper.maxconnections", "1");
+        startServer(3);
+
+        Socket first = connect();
+        assertTrue(reader(first).readLine().startsWith(WELCOME));
+        Socket second = connect();
+        BufferedReader in = reader(second);
+        assertEquals(BUSY, in.readLine());
+        assertNull(in.readLine());
+        second.close();
+
+        // the slot frees up once the first client leaves
+        first.close();
+        assertTrue(waitForWelcome(5000));
+    }
+
+    @Test
+    public void readTimeoutTest() throws IOException {
+        System.setProperty("minesweeper.readtimeout", "500");
+        startServer(3);
+
+        Socket client = connect();
+        BufferedReader in = reader(client);
+        assertTrue(in.readLine().startsWith(WELCOME));
+        long start = System.currentTimeMillis();
+        assertTrue(isClosedByServer(in));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        client.close();
+    }
+
+    @Test
+    public void idleReapTest() throws IOException {
+        System.setProperty("minesweeper.idletimeout", "1000");
+        startServer(3);
+
+        Socket client = connect();
+        BufferedReader in = reader(client);
+        assertTrue(in.readLine().startsWith(WELCOME));
+        long start = System.currentTimeMillis();
+        assertTrue(isClosedByServer(in));
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed >= 900 && elapsed < 5000);
+        client.close();
+    }
+
+    @Test
+    public void stuckWriterReapedTest() throws IOException {
+        System.setProperty("minesweeper.maxconnections", "1");
+        System.setProperty("minesweeper.writetimeout", "4000");
+        startServer(20);
+
+        // a client which asks for more boards than the socket buffers hold,
+        // says bye and never reads
+        Socket stuck = new Socket();
+        stuck.setReceiveBufferSize(4096);
+        stuck.connect(new InetSocketAddress("localhost", server
+                .getPort()));
+        OutputStream out = stuck.getOutputStream();
+        StringBuilder requests = new StringBuilder();
+        for (int i = 0; i < 8000; i++) {
+            requests.append("look\n");
+        }
+        requests.append("bye\n");
+        out.write(requests.toString().getBytes("UTF-8"));
+        out.flush();
+
+        // once the reader has handled bye, the blocked writer still holds
+        // the only slot...
+        sleep(2000);
+        Socket other = connect();
+        assertEquals(BUSY, reader(other).readLine());
+        other.close();
+
+        // ...until the reaper enforces the write timeout
+        assertTrue(waitForWelcome(10000));
+        stuck.close();
+    }
+
+    @Test
+    public void invalidOverflowPolicyTest() throws IOException {
+        System.setProperty("minesweeper.overflow", "bogus");
+        try {
+            new MinesweeperServer(3, 0, true);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("DROP, COALESCE or DISCONNECT"));
+        }
+    }
+
+    private void startServer(int size) throws IOException {
+        server = new MinesweeperServer(size, 0, true);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    // server closed by tearDown
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("localhost", server.getPort());
+        socket.setSoTimeout(10000);// never hang the test run
+        return socket;
+    }
+
+    /*
+     * Keeps connecting until a client is welcomed instead of turned away.
+     *
+     * @param timeout, milliseconds to keep trying
+     *
+     * @return Boolean of whether or not a client was welcomed in time
+     */
+    private boolean waitForWelcome(long timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (System.currentTimeMillis() < deadline) {
+            Socket socket = connect();
+            String line = reader(socket).readLine();
+            socket.close();
+            if (line != null && line.startsWith(WELCOME)) {
+                return true;
+            }
+            sleep(200);
+        }
+        return false;
+    }
+
+    /*
+     * Waits for the server to end the connection.
+     *
+     * @param in, reader on the client socket
+     *
+     * @return Boolean of whether or not the server closed it before the
+     * client's own read timeout
+     */
+    private static boolean isClosedByServer(BufferedReader in)
+            throws IOException {
+        try {
+            return in.readLine() == null;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (SocketException e) {
+            return true;// connection reset
+        }
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
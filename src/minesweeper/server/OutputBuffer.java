@@ -0,0 +1,164 @@
+package minesweeper.server;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/*
+ * Argument for Thread-Safety
+ * The handler thread offers messages and the writer thread takes them. Every method acquires the buffer's intrinsic
+ * lock for the whole method, and take() waits on that lock until a message arrives or the buffer is closed.
+ */
+public class OutputBuffer {
+
+    /*
+     * What to do with a new board reply when the buffer is full.
+     * DROP discards the new board. COALESCE discards the queued boards instead,
+     * since every board reply supersedes the ones before it. DISCONNECT refuses
+     * the message so the caller can drop the client.
+     * Other messages (welcome, help, BOOM!, bye) are never dropped or
+     * coalesced: queued boards are evicted to make room for them, and if that
+     * is not enough the client is disconnected.
+     */
+    public enum OverflowPolicy {
+        DROP, COALESCE, DISCONNECT
+    }
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final LinkedList<Message> queue = new LinkedList<Message>();
+    private int queuedChars = 0;
+    private boolean closed = false;
+
+    /*
+     * A queued line and whether a newer board reply may replace it.
+     */
+    private static class Message {
+        final String text;
+        final boolean board;
+
+        Message(String text, boolean board) {
+            this.text = text;
+            this.board = board;
+        }
+    }
+
+    /*
+     * Creates an empty buffer.
+     *
+     * @param capacity, maximum number of characters queued at once. A message
+     * larger than this is still accepted into an empty buffer.
+     *
+     * @param policy, what to do when a message does not fit
+     */
+    public OutputBuffer(int capacity, OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /*
+     * Queues a message for the writer, applying the overflow policy if it
+     * does not fit.
+     *
+     * @param message, the line to send
+     *
+     * @param board, true if the message is a board reply which a newer board
+     * reply supersedes
+     *
+     * @return Boolean of whether or not the client should stay connected.
+     * False if the buffer is closed, or it is full and the message may not be
+     * dropped.
+     */
+    public synchronized boolean offer(String message, boolean board) {
+        if (closed) {
+            return false;
+        }
+        if (!queue.isEmpty() && queuedChars + message.length() > capacity) {
+            if (policy == OverflowPolicy.DISCONNECT) {
+                return disconnect();
+            }
+            if (board) {
+                if (policy == OverflowPolicy.DROP) {
+                    return true;
+                }
+                // COALESCE: the new board supersedes every queued board
+                removeBoards();
+            } else {
+                removeBoards();
+                if (!queue.isEmpty()
+                        && queuedChars + message.length() > capacity) {
+                    return disconnect();
+                }
+            }
+        }
+        queue.addLast(new Message(message, board));
+        queuedChars += message.length();
+        notifyAll();
+        return true;
+    }
+
+    /*
+     * Removes every queued board reply.
+     */
+    private void removeBoards() {
+        Iterator<Message> it = queue.iterator();
+        while (it.hasNext()) {
+            Message queued = it.next();
+            if (queued.board) {
+                queuedChars -= queued.text.length();
+                it.remove();
+            }
+        }
+    }
+
+    /*
+     * Closes the buffer and discards what is queued, since the client is
+     * being dropped.
+     *
+     * @return false, for offer() to return
+     */
+    private boolean disconnect() {
+        closed = true;
+        queue.clear();
+        queuedChars = 0;
+        notifyAll();
+        return false;
+    }
+
+    /*
+     * Waits for the next message to send. Messages queued before close() are
+     * still returned.
+     *
+     * @return String next message, or null once the buffer is closed and empty
+     *
+     * @throws InterruptedException if the writer thread is interrupted
+     */
+    public synchronized String take() throws InterruptedException {
+        while (queue.isEmpty() && !closed) {
+            wait();
+        }
+        if (queue.isEmpty()) {
+            return null;
+        }
+        Message message = queue.removeFirst();
+        queuedChars -= message.text.length();
+        return message.text;
+    }
+
+    /*
+     * Stops accepting messages. The writer still drains what is queued.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /*
+     * @return Integer number of characters currently queued
+     */
+    public synchronized int size() {
+        return queuedChars;
+    }
+}
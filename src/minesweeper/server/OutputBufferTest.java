@@ -0,0 +1,96 @@
+package minesweeper.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class OutputBufferTest {
+
+    @Test
+    public void dropTest() throws InterruptedException {
+        OutputBuffer buffer = new OutputBuffer(10,
+                OutputBuffer.OverflowPolicy.DROP);
+        assertTrue(buffer.offer("aaaaaa", true));
+        assertTrue(buffer.offer("bbbbbb", true));
+        assertEquals(6, buffer.size());
+        assertEquals("aaaaaa", buffer.take());
+    }
+
+    @Test
+    public void dropKeepsByeTest() throws InterruptedException {
+        OutputBuffer buffer = new OutputBuffer(10,
+                OutputBuffer.OverflowPolicy.DROP);
+        assertTrue(buffer.offer("aaaaaaaa", true));
+        assertTrue(buffer.offer("bye", false));
+        buffer.close();
+        assertEquals("bye", buffer.take());
+        assertNull(buffer.take());
+    }
+
+    @Test
+    public void coalesceTest() throws InterruptedException {
+        OutputBuffer buffer = new OutputBuffer(10,
+                OutputBuffer.OverflowPolicy.COALESCE);
+        assertTrue(buffer.offer("aaa", true));
+        assertTrue(buffer.offer("bbbbbb", true));
+        assertTrue(buffer.offer("cccccc", true));
+        assertEquals("cccccc", buffer.take());
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void coalesceKeepsNonBoardMessagesTest()
+            throws InterruptedException {
+        OutputBuffer buffer = new OutputBuffer(12,
+                OutputBuffer.OverflowPolicy.COALESCE);
+        assertTrue(buffer.offer("help", false));
+        assertTrue(buffer.offer("aaaaaa", true));
+        assertTrue(buffer.offer("BOOM!", false));
+        assertTrue(buffer.offer("bbbbbb", true));
+        assertEquals("help", buffer.take());
+        assertEquals("BOOM!", buffer.take());
+        assertEquals("bbbbbb", buffer.take());
+    }
+
+    @Test
+    public void nonBoardOverflowDisconnectsTest() throws InterruptedException {
+        OutputBuffer buffer = new OutputBuffer(10,
+                OutputBuffer.OverflowPolicy.COALESCE);
+        assertTrue(buffer.offer("help help", false));
+        assertFalse(buffer.offer("help help", false));
+        assertNull(buffer.take());
+    }
+
+    @Test
+    public void disconnectTest() throws InterruptedException {
+        OutputBuffer buffer = new OutputBuffer(10,
+                OutputBuffer.OverflowPolicy.DISCONNECT);
+        assertTrue(buffer.offer("aaaaaa", true));
+        assertFalse(buffer.offer("bbbbbb", true));
+        assertFalse(buffer.offer("c", true));
+        assertNull(buffer.take());
+    }
+
+    @Test
+    public void oversizedMessageTest() throws InterruptedException {
+        OutputBuffer buffer = new OutputBuffer(4,
+                OutputBuffer.OverflowPolicy.DISCONNECT);
+        assertTrue(buffer.offer("a large board", true));
+        assertEquals("a large board", buffer.take());
+    }
+
+    @Test
+    public void closeDrainsTest() throws InterruptedException {
+        OutputBuffer buffer = new OutputBuffer(10,
+                OutputBuffer.OverflowPolicy.DROP);
+        buffer.offer("bye", false);
+        buffer.close();
+        assertFalse(buffer.offer("late", false));
+        assertEquals("bye", buffer.take());
+        assertNull(buffer.take());
+    }
+
+}